@@ -0,0 +1,85 @@
+import java.util.Vector;
+
+import bsim.particle.BSimBacterium;
+import bsim.particle.BSimVesicle;
+
+/**
+ * A BSimPopulation of bacteria, whose children are added to the population and whose
+ * vesicles are added to a separate population, both at the next commit().
+ *
+ * tick() runs the bacteria on the calling thread unless setParallel(true) is called.
+ * Only do that if their action() methods are safe to run at the same time, which the
+ * exercises' bacteria are not: they add to a shared BSimChemicalField, whose
+ * addQuantity() is not synchronised, so updates would be lost without any error.
+ *
+ * Typical use in a ticker:
+ *   bacteria.tick();
+ *   vesicles.commit();
+ */
+public class BSimBacteriumPopulation extends BSimPopulation<BSimBacterium> {
+
+	/** Vesicles released by the bacteria, or null if they do not vesiculate */
+	protected BSimPopulation<BSimVesicle> vesicles;
+	@SuppressWarnings("rawtypes")
+	protected Vector childList = getBirthList();
+	@SuppressWarnings("rawtypes")
+	protected Vector vesicleList;
+	/** Whether tick() splits the bacteria between threads */
+	protected boolean parallel = false;
+
+	protected Action<BSimBacterium> step = new Action<BSimBacterium>() {
+		public void apply(BSimBacterium b) {
+			b.action();
+			b.updatePosition();
+		}
+	};
+
+	public BSimBacteriumPopulation() {
+		this(null);
+	}
+
+	public BSimBacteriumPopulation(BSimPopulation<BSimVesicle> vesicles) {
+		this.vesicles = vesicles;
+		if(vesicles != null) vesicleList = vesicles.getBirthList();
+	}
+
+	/**
+	 * Set to true to split the bacteria between threads, once their action() methods
+	 * touch nothing shared without synchronising (for example a BSimChemicalField)
+	 */
+	public void setParallel(boolean b) { parallel = b; }
+	public BSimPopulation<BSimVesicle> getVesicles() { return vesicles; }
+
+	/**
+	 * Calls action() then updatePosition() on each bacterium, then commits the births
+	 * and deaths. Commit the vesicle population separately. If the thread is interrupted
+	 * part way through, the tick is not committed and the thread's interrupt status is set.
+	 */
+	public void tick() {
+		if(parallel) {
+			try {
+				parallelForEach(step);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		else forEach(step);
+		commit();
+	}
+
+	@Override
+	protected void born(BSimBacterium b) {
+		b.setChildList(childList);
+		if(vesicleList != null) b.setVesicleList(vesicleList);
+	}
+
+	@Override
+	protected void died(BSimBacterium b) {
+		if(b instanceof BSimScheduledBacterium) {
+			BSimScheduledBacterium s = (BSimScheduledBacterium)b;
+			s.getScheduler().remove(s);
+		}
+	}
+
+}
@@ -0,0 +1,341 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import bsim.BSim;
+import bsim.particle.BSimParticle;
+
+/**
+ * One subdomain of a simulation split between worker processes.
+ *
+ * The bound is split along x into slabs of whole chemical field planes, one per worker
+ * (rank 0 to workers-1). Each worker owns the particles in its slab and holds the field
+ * boxes in it. After each tick, a worker sends each neighbouring worker its edge plane
+ * of the field, which the neighbour keeps as a ghost plane for diffusion, along with any
+ * particles that have moved into the neighbour's slab. Neighbours are connected by
+ * sockets on basePort + rank of the accepting worker. If the x boundary is not solid the
+ * first and last workers are neighbours; if it is, the field has no ghost plane there.
+ *
+ * Particles may move at most one slab per timestep. Workers are normally started with
+ * BSimDomainRun, which runs this class's main() in each. A worker that fails, or that
+ * hears nothing from a neighbour for readTimeout, exits with status 1, so that its
+ * neighbours fail in turn rather than waiting for it forever.
+ */
+public class BSimDomain<P extends BSimParticle> {
+
+	protected BSim sim;
+	protected BSimDomainModel<P> model;
+	protected int rank;
+	protected int workers;
+	/** Number of planes the bound is split into along x */
+	protected int planes;
+	protected double planeWidth; // microns
+	protected BSimDomainField field;
+	/** The particles owned by this domain, in order of BSimDomainModel#id() */
+	protected List<P> particles = new ArrayList<P>();
+	protected Comparator<P> byId = new Comparator<P>() {
+		public int compare(P a, P b) {
+			long x = model.id(a), y = model.id(b);
+			return x < y ? -1 : (x == y ? 0 : 1);
+		}
+	};
+
+	/** Connections to the neighbours below and above in x, or null if there are none */
+	protected Channel lower, upper;
+	/** Longest wait for the neighbours to start */
+	protected static final int CONNECT_TIMEOUT = 30000; // milliseconds
+	/** Longest wait for a neighbour's planes and particles, or 0 to wait forever */
+	protected int readTimeout = 60000; // milliseconds
+
+	public BSimDomain(BSim sim, BSimDomainModel<P> model, int rank, int workers) {
+		this.sim = sim;
+		this.model = model;
+		this.rank = rank;
+		this.workers = workers;
+
+		int[] boxes = model.getFieldBoxes();
+		planes = boxes != null ? boxes[0] : workers;
+		if(planes < workers) throw new IllegalArgumentException("Cannot split " + planes + " planes between " + workers + " workers");
+		planeWidth = sim.getBound().x/planes;
+		if(boxes != null)
+			field = new BSimDomainField(sim, boxes, model.getDiffusivity(), model.getDecayRate(), firstPlane(rank), firstPlane(rank + 1) - firstPlane(rank));
+	}
+
+	public BSim getSim() { return sim; }
+	public int getRank() { return rank; }
+	public int getWorkers() { return workers; }
+	/** The field boxes held by this domain, or null if the model has no field */
+	public BSimDomainField getField() { return field; }
+	public List<P> getParticles() { return particles; }
+	/** Sets the longest wait for a neighbour, before connect() */
+	public void setReadTimeout(int ms) { readTimeout = ms; }
+
+	/** First plane of the slab of worker r */
+	public int firstPlane(int r) { return (int)((long)r*planes/workers); }
+
+	/** The worker whose slab contains x */
+	public int owner(double x) {
+		int p = Math.max(0, Math.min(planes - 1, (int)(x/planeWidth)));
+		return (int)(((long)(p + 1)*workers - 1)/planes);
+	}
+	public boolean owns(BSimParticle p) { return owner(p.getPosition().x) == rank; }
+
+	/**
+	 * Adds a particle owned by this domain; call from BSimDomainModel#init()
+	 */
+	public void add(P p) {
+		particles.add(p);
+	}
+
+	/** Whether there is a neighbour (or this domain itself) below/above in x */
+	protected boolean periodic() { return !sim.getSolid()[0]; }
+	protected boolean hasLower() { return rank > 0 || periodic(); }
+	protected boolean hasUpper() { return rank < workers - 1 || periodic(); }
+
+	/**
+	 * Connects to the neighbouring workers on localhost
+	 */
+	public void connect(int basePort) throws IOException {
+		if(workers == 1) return;
+		ServerSocket server = null;
+		if(hasLower()) {
+			server = new ServerSocket(basePort + rank, 1, InetAddress.getLoopbackAddress());
+			server.setSoTimeout(CONNECT_TIMEOUT);
+		}
+		try {
+			/* Connect up, retrying until the neighbour is listening, then accept from below */
+			if(hasUpper()) {
+				int port = basePort + (rank + 1) % workers;
+				long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+				while(upper == null) {
+					try {
+						upper = new Channel(new Socket(InetAddress.getLoopbackAddress(), port));
+					} catch (ConnectException e) {
+						if(System.currentTimeMillis() > deadline) throw e;
+						try { Thread.sleep(50); } catch (InterruptedException ie) {}
+					}
+				}
+			}
+			if(server != null) lower = new Channel(server.accept());
+		} finally {
+			if(server != null) server.close();
+		}
+	}
+
+	/**
+	 * Run after each BSimDomainModel#tick(): exchanges edge planes and particles with the
+	 * neighbours and updates the field
+	 */
+	public void exchange() throws IOException {
+		List<P> down = new ArrayList<P>(), up = new ArrayList<P>();
+		if(workers > 1) {
+			List<P> staying = new ArrayList<P>(particles.size());
+			int below = (rank - 1 + workers) % workers, above = (rank + 1) % workers;
+			for(P p : particles) {
+				int r = owner(p.getPosition().x);
+				if(r == rank) staying.add(p);
+				else if(r == above && upper != null) up.add(p);
+				else if(r == below && lower != null) down.add(p);
+				else throw new IllegalStateException("Particle moved more than one domain in a timestep");
+			}
+			particles = staying;
+		}
+
+		int nx = field != null ? field.getPlanes() : 0;
+		Future<Object> sentDown = null, sentUp = null;
+		if(lower != null) sentDown = lower.send(field != null ? field.plane(1) : null, down);
+		if(upper != null) sentUp = upper.send(field != null ? field.plane(nx) : null, up);
+
+		boolean arrived = false;
+		if(lower != null) arrived |= lower.receive(field != null ? field.plane(0) : null, particles);
+		if(upper != null) arrived |= upper.receive(field != null ? field.plane(nx + 1) : null, particles);
+		try {
+			if(sentDown != null) sentDown.get();
+			if(sentUp != null) sentUp.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+
+		if(field != null) {
+			/* A single periodic domain is its own neighbour */
+			if(workers == 1 && periodic()) {
+				copy(field.plane(nx), field.plane(0));
+				copy(field.plane(1), field.plane(nx + 1));
+			}
+			field.update(hasLower(), hasUpper());
+		}
+
+		if(arrived) Collections.sort(particles, byId);
+	}
+
+	protected static void copy(double[][] from, double[][] to) {
+		for(int j = 0; j < from.length; j++) System.arraycopy(from[j], 0, to[j], 0, from[j].length);
+	}
+
+	/**
+	 * Writes the planes held by this domain and its particles to a file read by BSimDomainRun
+	 */
+	public void write(String filename) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		try {
+			if(field == null) out.writeInt(-1);
+			else {
+				out.writeInt(field.getFirstPlane());
+				out.writeInt(field.getPlanes());
+				for(int i = 1; i <= field.getPlanes(); i++) writePlane(out, field.plane(i));
+			}
+			out.writeInt(particles.size());
+			for(P p : particles) model.write(p, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void close() throws IOException {
+		if(lower != null) lower.close();
+		if(upper != null) upper.close();
+	}
+
+	protected static void writePlane(DataOutputStream out, double[][] plane) throws IOException {
+		for(double[] row : plane)
+			for(double q : row) out.writeDouble(q);
+	}
+
+	protected static void readPlane(DataInputStream in, double[][] plane) throws IOException {
+		for(double[] row : plane)
+			for(int k = 0; k < row.length; k++) row[k] = in.readDouble();
+	}
+
+	/**
+	 * A connection to a neighbouring worker. Sending happens on a separate thread so that
+	 * two neighbours sending to each other at once cannot block on full socket buffers.
+	 */
+	protected class Channel {
+		Socket socket;
+		DataInputStream in;
+		DataOutputStream out;
+		/* A daemon, so that a worker that fails can still exit */
+		ExecutorService sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BSimDomain sender");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		Channel(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(readTimeout);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		Future<Object> send(final double[][] plane, final List<P> leaving) {
+			return sender.submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					if(plane != null) writePlane(out, plane);
+					out.writeInt(leaving.size());
+					for(P p : leaving) model.write(p, out);
+					out.flush();
+					return null;
+				}
+			});
+		}
+
+		/** Reads the neighbour's plane into ghost and adds its particles, returning whether there were any */
+		boolean receive(double[][] ghost, List<P> arriving) throws IOException {
+			if(ghost != null) readPlane(in, ghost);
+			int n = in.readInt();
+			for(int i = 0; i < n; i++) arriving.add(model.read(sim, in));
+			return n > 0;
+		}
+
+		void close() throws IOException {
+			sender.shutdown();
+			socket.close();
+		}
+	}
+
+	/**
+	 * Runs one worker: modelClass rank workers basePort outputFile [readTimeout]
+	 *
+	 * The worker runs timesteps(simulationTime) ticks, numbered from 0, and during tick t
+	 * sim.getTime() is t*dt, as in BSim#export(). BSim#export() runs one tick more, as it
+	 * loops while timestep <= timesteps(simulationTime).
+	 */
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) {
+		BSimDomain<BSimParticle> domain = null;
+		boolean failed = false;
+		try {
+			BSimDomainModel<BSimParticle> model = (BSimDomainModel<BSimParticle>)Class.forName(args[0]).getDeclaredConstructor().newInstance();
+			int rank = Integer.parseInt(args[1]);
+			int workers = Integer.parseInt(args[2]);
+			int basePort = Integer.parseInt(args[3]);
+
+			BSim sim = new BSim();
+			model.setup(sim);
+			domain = new BSimDomain<BSimParticle>(sim, model, rank, workers);
+			if(args.length > 5) domain.setReadTimeout(Integer.parseInt(args[5]));
+			model.init(domain);
+			Collections.sort(domain.particles, domain.byId);
+			domain.connect(basePort);
+
+			for(int t = 0; t < sim.timesteps(sim.getSimulationTime()); t++) {
+				setTimestep(sim, t);
+				model.tick(domain);
+				domain.exchange();
+			}
+
+			domain.write(args[4]);
+		} catch (Throwable e) {
+			System.err.println("BSimDomain worker " + args[1] + " failed");
+			e.printStackTrace();
+			failed = true;
+		} finally {
+			/* Closing the sockets tells the neighbours if this worker failed */
+			try {
+				if(domain != null) domain.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		/* Exit even if a thread is still blocked on a neighbour */
+		if(failed) System.exit(1);
+	}
+
+	/**
+	 * Sets BSim#timestep, which BSim only advances inside its own preview() and export(),
+	 * so that sim.getTime() is right during BSimDomainModel#tick()
+	 */
+	protected static void setTimestep(BSim sim, int t) throws NoSuchFieldException, IllegalAccessException {
+		if(timestepField == null) {
+			timestepField = BSim.class.getDeclaredField("timestep");
+			timestepField.setAccessible(true);
+		}
+		timestepField.setInt(sim, t);
+	}
+	private static Field timestepField;
+
+}
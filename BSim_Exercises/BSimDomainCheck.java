@@ -0,0 +1,207 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Vector3d;
+
+import bsim.BSim;
+import bsim.particle.BSimParticle;
+
+
+// ---------------------------------------------------------------------------------
+// Checks that a simulation split between 2 or 3 worker processes gives the same
+// chemical field and particles as the same simulation run by a single worker, with
+// both a periodic and a solid x boundary, and that the field stays non-negative and
+// holds no more chemical than was added. Run with the same classpath as the
+// exercises, e.g.
+//   java -cp .:./Libraries/core.jar:./Libraries/vecmath.jar:./Libraries/BSim.jar BSimDomainCheck
+// ---------------------------------------------------------------------------------
+public class BSimDomainCheck {
+
+	public static void main(String[] args) throws Exception {
+		boolean ok = check(new PeriodicModel(), 2) & check(new PeriodicModel(), 3) & check(new SolidModel(), 3);
+		System.out.println(ok ? "PASSED" : "FAILED");
+		if(!ok) System.exit(1);
+	}
+
+	static boolean check(DriftModel model, int workers) throws Exception {
+		BSimDomainRun<DriftParticle> single = run(model, 1, "domain-check-single", 47100);
+		BSimDomainRun<DriftParticle> split = run(model, workers, "domain-check-split", 47200);
+
+		String name = model.getClass().getSimpleName() + " (" + workers + " workers)";
+		boolean ok = true;
+
+		double[][][] a = single.getQuantity(), b = split.getQuantity();
+		double total = 0;
+		for(int i = 0; i < a.length; i++)
+			for(int j = 0; j < a[i].length; j++)
+				for(int k = 0; k < a[i][j].length; k++) {
+					total += a[i][j][k];
+					if(a[i][j][k] < 0) {
+						if(ok) System.out.println(name + ": negative quantity at (" + i + "," + j + "," + k + "): " + a[i][j][k]);
+						ok = false;
+					}
+					if(a[i][j][k] != b[i][j][k]) {
+						if(ok) System.out.println(name + ": field differs at (" + i + "," + j + "," + k + "): " + a[i][j][k] + " != " + b[i][j][k]);
+						ok = false;
+					}
+				}
+		/* Decay and solid boundaries can only lose chemical */
+		double added = model.added();
+		if(total > added) {
+			System.out.println(name + ": total quantity " + total + " is more than the " + added + " added");
+			ok = false;
+		}
+
+		List<DriftParticle> p = single.getParticles(), q = split.getParticles();
+		if(p.size() != q.size()) {
+			System.out.println(name + ": " + p.size() + " particles != " + q.size());
+			ok = false;
+		}
+		Map<Long, DriftParticle> byId = new HashMap<Long, DriftParticle>();
+		for(DriftParticle d : q) byId.put(d.id, d);
+		for(DriftParticle d : p) {
+			DriftParticle e = byId.get(d.id);
+			if(e == null || !d.getPosition().equals(e.getPosition()) || d.state != e.state) {
+				if(ok) System.out.println(name + ": particle " + d.id + " differs");
+				ok = false;
+			}
+		}
+
+		System.out.println(name + ": " + p.size() + " particles, total quantity " + total + (ok ? ", identical" : ", DIFFERENT"));
+		return ok;
+	}
+
+	static BSimDomainRun<DriftParticle> run(DriftModel model, int workers, String prefix, int basePort) throws Exception {
+		BSimDomainRun<DriftParticle> run = new BSimDomainRun<DriftParticle>(model, workers, prefix);
+		run.setBasePort(basePort);
+		try {
+			run.run();
+			run.collect();
+		} finally {
+			run.delete();
+		}
+		return run;
+	}
+
+
+	// -----------------------------------------------------------------------------
+	// Particles that drift in x with a random walk from their own generator, and
+	// release chemical wherever they are
+	// -----------------------------------------------------------------------------
+	public static class DriftParticle extends BSimParticle {
+		long id;
+		/** State of a SplitMix64 generator */
+		long state;
+
+		public DriftParticle(BSim sim, Vector3d position, long id, long state) {
+			super(sim, position, 1);
+			this.id = id;
+			this.state = state;
+		}
+
+		double nextDouble() {
+			long z = (state += 0x9E3779B97F4A7C15L);
+			z = (z ^ (z >>> 30))*0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27))*0x94D049BB133111EBL;
+			z = z ^ (z >>> 31);
+			return (z >>> 11)*0x1.0p-53;
+		}
+
+		@Override
+		public void action() {
+			/* Uniform rather than Gaussian noise is enough here */
+			Vector3d f = new Vector3d(nextDouble() - 0.3, nextDouble() - 0.5, nextDouble() - 0.5);
+			f.scale(2000*stokesCoefficient());
+			addForce(f);
+		}
+	}
+
+	public static class DriftModel extends BSimDomainModel<DriftParticle> {
+		static final int PARTICLES = 2000;
+		static final double RELEASE = 1e3; // molecules per particle per timestep
+
+		@Override
+		public void setup(BSim sim) {
+			sim.setBound(300, 100, 100);
+			sim.setSolid(false, true, false);
+			sim.setDt(0.01);
+			sim.setSimulationTime(2);
+			fieldBoxes = new int[] {30, 10, 10};
+			/* D*dt/(box size)^2 = 0.01, well below the 1/12 that BSimDomainField#update() needs to stay stable */
+			diffusivity = 100;
+			decayRate = 0.5;
+		}
+
+		/** Total chemical added by init() and tick() over the whole run */
+		double added() {
+			BSim sim = new BSim();
+			setup(sim);
+			double boxVolume = (sim.getBound().x/fieldBoxes[0])*(sim.getBound().y/fieldBoxes[1])*(sim.getBound().z/fieldBoxes[2]);
+			double initial = 0;
+			for(int i = 0; i < fieldBoxes[0]; i++) initial += initialConc(i)*boxVolume;
+			return initial + PARTICLES*RELEASE*sim.timesteps(sim.getSimulationTime());
+		}
+
+		double initialConc(int i) { return 1e3*i; }
+
+		@Override
+		public void init(BSimDomain<DriftParticle> domain) {
+			BSim sim = domain.getSim();
+			DriftParticle seed = new DriftParticle(sim, new Vector3d(), -1, 42);
+			for(long id = 0; id < PARTICLES; id++) {
+				Vector3d position = new Vector3d(300*seed.nextDouble(), 100*seed.nextDouble(), 100*seed.nextDouble());
+				DriftParticle p = new DriftParticle(sim, position, id, id*31 + 7);
+				if(domain.owns(p)) domain.add(p);
+			}
+			BSimDomainField field = domain.getField();
+			for(int i = 0; i < fieldBoxes[0]; i++) field.setConc(i, 5, 5, initialConc(i));
+		}
+
+		/** Ticks run so far, to check the time the worker gives the model */
+		int ticks = 0;
+
+		@Override
+		public void tick(BSimDomain<DriftParticle> domain) {
+			if(domain.getSim().getTimestep() != ticks++)
+				throw new IllegalStateException("Tick " + (ticks - 1) + " run at timestep " + domain.getSim().getTimestep());
+			for(DriftParticle p : domain.getParticles()) {
+				domain.getField().addQuantity(p.getPosition(), RELEASE);
+				p.action();
+				p.updatePosition();
+			}
+		}
+
+		@Override
+		public long id(DriftParticle p) { return p.id; }
+
+		@Override
+		public void write(DriftParticle p, DataOutput out) throws IOException {
+			out.writeLong(p.id);
+			out.writeLong(p.state);
+			out.writeDouble(p.getPosition().x);
+			out.writeDouble(p.getPosition().y);
+			out.writeDouble(p.getPosition().z);
+		}
+
+		@Override
+		public DriftParticle read(BSim sim, DataInput in) throws IOException {
+			long id = in.readLong(), state = in.readLong();
+			return new DriftParticle(sim, new Vector3d(in.readDouble(), in.readDouble(), in.readDouble()), id, state);
+		}
+	}
+
+	public static class PeriodicModel extends DriftModel {}
+
+	public static class SolidModel extends DriftModel {
+		@Override
+		public void setup(BSim sim) {
+			super.setup(sim);
+			sim.setSolid(true, true, false);
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+import javax.vecmath.Vector3d;
+
+import bsim.BSim;
+
+/**
+ * The part of a chemical field held by one BSimDomain: the planes of boxes i0 <= i < i0+nx
+ * of a field of the same size and shape as a BSimChemicalField over the whole bound,
+ * plus a ghost plane either side holding copies of the neighbouring domains' planes.
+ *
+ * Box indices in the public methods are global. Diffusion exchanges the same fluxes as
+ * BSimChemicalField#diffuse(), where every neighbouring pair of boxes exchanges chemical
+ * from both sides, but computes them all from the quantities at the start of the
+ * timestep. BSimChemicalField updates its boxes in place, so its result depends on the
+ * order the boxes are visited in and cannot be split between domains.
+ */
+public class BSimDomainField {
+
+	protected BSim sim;
+	protected double diffusivity; // (microns)^2/s
+	/** Fraction of chemical decaying per second, quantity(t+dt) = quantity(t)*(1-decayRate*dt) */
+	protected double decayRate; // 1/seconds
+	/** Number of boxes in each dimension of the whole field */
+	protected int[] boxes;
+	/** Box size */
+	protected double[] box = new double[3]; // microns
+	protected double boxVolume;
+	/** First (global) plane held by this domain */
+	protected int i0;
+	/** Number of planes held by this domain */
+	protected int nx;
+	/** The quantity of chemical in the box (i0+i-1,j,k); planes 0 and nx+1 are ghosts */
+	protected double[][][] quantity; // number of molecules
+	/** Scratch space for update() */
+	protected double[][][] next;
+
+	public BSimDomainField(BSim sim, int[] boxes, double diffusivity, double decayRate, int i0, int nx) {
+		this.sim = sim;
+		this.boxes = boxes;
+		box[0] = sim.getBound().x/boxes[0];
+		box[1] = sim.getBound().y/boxes[1];
+		box[2] = sim.getBound().z/boxes[2];
+		boxVolume = box[0]*box[1]*box[2];
+		this.diffusivity = diffusivity;
+		this.decayRate = decayRate;
+		this.i0 = i0;
+		this.nx = nx;
+		quantity = new double[nx + 2][boxes[1]][boxes[2]];
+		next = new double[nx + 2][boxes[1]][boxes[2]];
+	}
+
+	public int[] getBoxes() { return boxes; }
+	public double[] getBox() { return box; }
+	public int getFirstPlane() { return i0; }
+	public int getPlanes() { return nx; }
+
+	/** Whether this domain holds the box (i,j,k) */
+	public boolean holds(int i) { return i >= i0 && i < i0 + nx; }
+
+	/** Adds a quantity of chemical to the box containing position v, which must be held by this domain */
+	public void addQuantity(Vector3d v, double q) {
+		int[] b = boxCoords(v);
+		addQuantity(b[0],b[1],b[2],q);
+	}
+	/** Adds a quantity of chemical to the box (i,j,k), which must be held by this domain */
+	public void addQuantity(int i, int j, int k, double q) {
+		double[] row = quantity[i - i0 + 1][j];
+		row[k] += q;
+		if(row[k] < 0) row[k] = 0;
+	}
+
+	/** Sets the concentration of the box (i,j,k) if it is held by this domain */
+	public void setConc(int i, int j, int k, double c) {
+		if(holds(i)) quantity[i - i0 + 1][j][k] = c*boxVolume;
+	}
+
+	/** Gets the concentration at the position v, which must be held by this domain, in molecules/(micron)^3 */
+	public double getConc(Vector3d v) {
+		int[] b = boxCoords(v);
+		return getConc(b[0],b[1],b[2]);
+	}
+	/** Gets the concentration of the box (i,j,k), which must be held by this domain, in molecules/(micron)^3 */
+	public double getConc(int i, int j, int k) {
+		return quantity[i - i0 + 1][j][k]/boxVolume;
+	}
+
+	/**
+	 * Returns the (global) integer coordinates of the box containing the position v. Positions
+	 * on the upper bound belong to the last box.
+	 */
+	public int[] boxCoords(Vector3d v) {
+		return new int[] {boxCoord(v.x, 0), boxCoord(v.y, 1), boxCoord(v.z, 2)};
+	}
+	public int boxCoord(double x, int d) {
+		return Math.max(0, Math.min(boxes[d] - 1, (int)(x/box[d])));
+	}
+
+	/** The local plane i, where 1 and nx are the first and last held planes and 0 and nx+1 are ghosts */
+	public double[][] plane(int i) { return quantity[i]; }
+
+	/**
+	 * Diffuses and decays the chemical over one timestep. lowerGhost and upperGhost say
+	 * whether the ghost planes hold the neighbouring planes, or whether there is a solid
+	 * boundary there instead.
+	 */
+	public void update(boolean lowerGhost, boolean upperGhost) {
+		double kX = (diffusivity*sim.getDt())/Math.pow(box[0],2);
+		double kY = (diffusivity*sim.getDt())/Math.pow(box[1],2);
+		double kZ = (diffusivity*sim.getDt())/Math.pow(box[2],2);
+		double decay = 1 - decayRate*sim.getDt();
+		boolean[] solid = sim.getSolid();
+		int ny = boxes[1], nz = boxes[2];
+
+		for(int i = 1; i <= nx; i++)
+			for(int j = 0; j < ny; j++)
+				for(int k = 0; k < nz; k++) {
+					/* Index of the box in the positive (negative) .. direction, or -1 for a solid boundary */
+					int yAbove = (j == ny-1 ? (solid[1] ? -1 : 0) : j+1);
+					int yBelow = (j == 0 ? (solid[1] ? -1 : ny-1) : j-1);
+					int zAbove = (k == nz-1 ? (solid[2] ? -1 : 0) : k+1);
+					int zBelow = (k == 0 ? (solid[2] ? -1 : nz-1) : k-1);
+
+					double q = quantity[i][j][k];
+					double d = 0;
+					if(i < nx || upperGhost) d += kX*(quantity[i+1][j][k] - q);
+					if(i > 1 || lowerGhost) d += kX*(quantity[i-1][j][k] - q);
+					if(yAbove != -1) d += kY*(quantity[i][yAbove][k] - q);
+					if(yBelow != -1) d += kY*(quantity[i][yBelow][k] - q);
+					if(zAbove != -1) d += kZ*(quantity[i][j][zAbove] - q);
+					if(zBelow != -1) d += kZ*(quantity[i][j][zBelow] - q);
+
+					/* Each pair of boxes exchanges the flux twice, once from each side */
+					next[i][j][k] = (q + 2*d)*decay;
+				}
+
+		double[][][] t = quantity;
+		quantity = next;
+		next = t;
+	}
+
+}
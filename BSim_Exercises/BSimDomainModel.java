@@ -0,0 +1,59 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import bsim.BSim;
+import bsim.particle.BSimParticle;
+
+/**
+ * Describes a simulation to be split between BSimDomain worker processes. Each worker
+ * creates its own instance (with the no-argument constructor), so the model must give
+ * the same result in each of them.
+ *
+ * For a run split between several workers to match a run in one worker, particles should
+ * draw any random numbers from their own generator, written and read with the particle,
+ * rather than BSimParticle's shared one.
+ */
+public abstract class BSimDomainModel<P extends BSimParticle> {
+
+	/** Number of boxes in each dimension of the chemical field, or null for no field */
+	protected int[] fieldBoxes;
+	protected double diffusivity; // (microns)^2/s
+	protected double decayRate; // 1/seconds
+
+	public int[] getFieldBoxes() { return fieldBoxes; }
+	public double getDiffusivity() { return diffusivity; }
+	public double getDecayRate() { return decayRate; }
+
+	/**
+	 * Sets the bound, solidity, dt and simulation time of the simulation, and the
+	 * chemical field if there is one
+	 */
+	public abstract void setup(BSim sim);
+
+	/**
+	 * Adds the particles the domain owns, and sets the concentrations of the boxes it holds
+	 */
+	public abstract void init(BSimDomain<P> domain);
+
+	/**
+	 * Run each timestep on the domain's particles and field, as BSimTicker#tick() is.
+	 * The domain only holds the field boxes in its own slab, so particles must use the
+	 * field before updatePosition() moves them, possibly into another slab. During tick
+	 * t, from 0 to timesteps(simulationTime) - 1, sim.getTime() is t*dt.
+	 */
+	public abstract void tick(BSimDomain<P> domain);
+
+	/**
+	 * A unique, fixed identifier for the particle. Each domain keeps its particles in
+	 * order of identifier so that they are visited in the same order however the
+	 * simulation is split.
+	 */
+	public abstract long id(P p);
+
+	/** Writes all of the state of a particle moving to another domain */
+	public abstract void write(P p, DataOutput out) throws IOException;
+	/** Reads a particle written by write() */
+	public abstract P read(BSim sim, DataInput in) throws IOException;
+
+}
@@ -0,0 +1,133 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import bsim.BSim;
+import bsim.particle.BSimParticle;
+
+/**
+ * Runs a BSimDomainModel split between worker processes on this machine. Each worker
+ * writes its planes of the field and its particles to prefix-rank.dat, which are left
+ * for the caller: stream them through a Sink with read(), or, if the whole simulation
+ * fits in this process, collect them into one field and particle list with collect().
+ */
+public class BSimDomainRun<P extends BSimParticle> {
+
+	/** Receives the results of a run, one worker at a time */
+	public static interface Sink<P> {
+		/** The plane i (global) of the field; the array is reused for the next plane */
+		void plane(int i, double[][] plane);
+		void particle(P p);
+	}
+
+	protected BSimDomainModel<P> model;
+	protected BSim sim = new BSim();
+	protected int workers;
+	protected int basePort = 47000;
+	/** Passed to BSimDomain#setReadTimeout() in each worker */
+	protected int readTimeout = 60000; // milliseconds
+	/** Workers write their results to prefix-rank.dat */
+	protected String prefix;
+
+	/** The chemical field over the whole bound, or null if the model has no field */
+	protected double[][][] quantity;
+	protected List<P> particles;
+
+	public BSimDomainRun(BSimDomainModel<P> model, int workers, String prefix) {
+		this.model = model;
+		this.workers = workers;
+		this.prefix = prefix;
+		model.setup(sim);
+	}
+
+	/** Workers listen on basePort to basePort + workers - 1 */
+	public void setBasePort(int p) { basePort = p; }
+	public void setReadTimeout(int ms) { readTimeout = ms; }
+
+	/** The field collected by collect() */
+	public double[][][] getQuantity() { return quantity; }
+	/** The particles collected by collect() */
+	public List<P> getParticles() { return particles; }
+
+	/**
+	 * Starts a worker process per domain, with this process's classpath, and waits for
+	 * them all to finish
+	 */
+	public void run() throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Process> processes = new ArrayList<Process>();
+		for(int r = 0; r < workers; r++) {
+			ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					"BSimDomain", model.getClass().getName(), "" + r, "" + workers, "" + basePort, filename(r), "" + readTimeout);
+			pb.redirectErrorStream(true);
+			pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+			processes.add(pb.start());
+		}
+
+		int failed = 0;
+		try {
+			for(Process p : processes)
+				if(p.waitFor() != 0) failed++;
+		} finally {
+			/* Does nothing to workers that have finished, but stops the rest if this thread is interrupted */
+			for(Process p : processes) p.destroy();
+		}
+		if(failed > 0) throw new IOException(failed + " of " + workers + " workers failed");
+	}
+
+	/** The file worker rank writes its results to */
+	public String filename(int rank) { return prefix + "-" + rank + ".dat"; }
+
+	/**
+	 * Passes the results written by each worker to the sink, without holding more than
+	 * a plane of the field in memory
+	 */
+	public void read(Sink<P> sink) throws IOException {
+		int[] boxes = model.getFieldBoxes();
+		double[][] plane = boxes != null ? new double[boxes[1]][boxes[2]] : null;
+
+		for(int r = 0; r < workers; r++) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename(r))));
+			try {
+				int i0 = in.readInt();
+				if(i0 >= 0) {
+					int nx = in.readInt();
+					for(int i = i0; i < i0 + nx; i++) {
+						BSimDomain.readPlane(in, plane);
+						sink.plane(i, plane);
+					}
+				}
+				int n = in.readInt();
+				for(int i = 0; i < n; i++) sink.particle(model.read(sim, in));
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the results written by each worker into quantity and particles
+	 */
+	public void collect() throws IOException {
+		int[] boxes = model.getFieldBoxes();
+		quantity = boxes != null ? new double[boxes[0]][boxes[1]][boxes[2]] : null;
+		particles = new ArrayList<P>();
+
+		read(new Sink<P>() {
+			public void plane(int i, double[][] plane) { BSimDomain.copy(plane, quantity[i]); }
+			public void particle(P p) { particles.add(p); }
+		});
+	}
+
+	/**
+	 * Deletes the files written by the workers
+	 */
+	public void delete() {
+		for(int r = 0; r < workers; r++) new File(filename(r)).delete();
+	}
+
+}
@@ -0,0 +1,138 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.Vector;
+import javax.imageio.ImageIO;
+import javax.vecmath.Vector3d;
+import processing.core.PGraphics3D;
+import bsim.BSim;
+import bsim.draw.BSimP3DDrawer;
+import bsim.particle.BSimBacterium;
+import bsim.particle.BSimVesicle;
+
+
+// ---------------------------------------------------------------------------------
+// Times a frame of BSimP3DDrawer against BSimFastP3DDrawer for growing populations,
+// first of bacteria and then of vesicles with a bacterium per 100 vesicles, as a
+// vesiculating colony produces, and compares the images: "full detail" is
+// BSimFastP3DDrawer with level of detail switched off, which should draw the same
+// image as BSimP3DDrawer, and "LOD" is its default settings. Pass a directory to
+// also save each image as a PNG there.
+// Run with the same classpath as the exercises, e.g.
+//   java -cp .:./Libraries/core.jar:./Libraries/vecmath.jar:./Libraries/BSim.jar BSimDrawerBenchmark
+// ---------------------------------------------------------------------------------
+public class BSimDrawerBenchmark {
+
+	static final int WIDTH = 800, HEIGHT = 600;
+	static final int FRAMES = 5;
+
+	public static void main(String[] args) throws IOException {
+		int[] populations = {100, 1000, 10000, 100000};
+		File dir = args.length > 0 ? new File(args[0]) : null;
+
+		System.out.println("particles\tBSimP3DDrawer ms/frame\tfull detail ms/frame\tLOD ms/frame\tfull detail pixels differing\tLOD pixels differing");
+		for(int n : populations) run(n + " bacteria", n, 0, dir);
+		for(int n : populations) run(n + " vesicles", n/100, n, dir);
+	}
+
+	/**
+	 * Times and compares the drawers for a scene of randomly placed bacteria and
+	 * vesicles, each randomly red or green
+	 */
+	static void run(String name, int bacteriumCount, int vesicleCount, File dir) throws IOException {
+		BSim sim = new BSim();
+		sim.setBound(1000,1000,1000);
+
+		Random rng = new Random(bacteriumCount + 31*vesicleCount);
+		final Vector<BSimBacterium> bacteria = new Vector<BSimBacterium>();
+		final Vector<BSimVesicle> vesicles = new Vector<BSimVesicle>();
+		final Vector<Color> colours = new Vector<Color>();
+		for(int i = 0; i < bacteriumCount + vesicleCount; i++) {
+			Vector3d position = new Vector3d(1000*rng.nextDouble(), 1000*rng.nextDouble(), 1000*rng.nextDouble());
+			if(i < bacteriumCount) bacteria.add(new BSimBacterium(sim, position));
+			else vesicles.add(new BSimVesicle(sim, position, 0.02));
+			colours.add(rng.nextBoolean() ? Color.GREEN : Color.RED);
+		}
+
+		BSimP3DDrawer stock = new BSimP3DDrawer(sim, WIDTH, HEIGHT) {
+			@Override
+			public void scene(PGraphics3D p3d) {
+				for(int i = 0; i < bacteria.size(); i++) draw(bacteria.get(i), colours.get(i));
+				for(int i = 0; i < vesicles.size(); i++) draw(vesicles.get(i), colours.get(bacteria.size() + i));
+			}
+		};
+		BSimFastP3DDrawer full = new BSimFastP3DDrawer(sim, WIDTH, HEIGHT) {
+			@Override
+			public void scene(PGraphics3D p3d) {
+				for(int i = 0; i < bacteria.size(); i++) draw(bacteria.get(i), colours.get(i));
+				for(int i = 0; i < vesicles.size(); i++) draw(vesicles.get(i), colours.get(bacteria.size() + i));
+			}
+		};
+		full.setPointThreshold(0);
+		full.setBillboardThreshold(0);
+		full.setSphereThreshold(0);
+		BSimFastP3DDrawer lod = new BSimFastP3DDrawer(sim, WIDTH, HEIGHT) {
+			@Override
+			public void scene(PGraphics3D p3d) {
+				for(int i = 0; i < bacteria.size(); i++) draw(bacteria.get(i), colours.get(i));
+				for(int i = 0; i < vesicles.size(); i++) draw(vesicles.get(i), colours.get(bacteria.size() + i));
+			}
+		};
+
+		/* The full detail drawers take seconds per frame at the largest sizes, so only time them once */
+		int slowFrames = bacteriumCount + vesicleCount > 10000 ? 1 : FRAMES;
+		BufferedImage stockImage = image(), fullImage = image(), lodImage = image();
+		double stockMs = msPerFrame(stock, stockImage, slowFrames);
+		double fullMs = msPerFrame(full, fullImage, slowFrames);
+		double lodMs = msPerFrame(lod, lodImage, FRAMES);
+
+		System.out.println(name + "\t" + format(stockMs) + "\t" + format(fullMs) + "\t" + format(lodMs)
+				+ "\t" + format(100*differing(stockImage, fullImage)) + "%"
+				+ "\t" + format(100*differing(stockImage, lodImage)) + "%");
+
+		if(dir != null) {
+			String file = name.replace(' ', '-');
+			ImageIO.write(stockImage, "png", new File(dir, file + "-stock.png"));
+			ImageIO.write(fullImage, "png", new File(dir, file + "-full.png"));
+			ImageIO.write(lodImage, "png", new File(dir, file + "-lod.png"));
+		}
+	}
+
+	static BufferedImage image() {
+		return new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+	}
+
+	static double msPerFrame(BSimP3DDrawer drawer, BufferedImage img, int frames) {
+		Graphics2D g = img.createGraphics();
+		/* Warm up */
+		drawer.draw(g);
+		long start = System.nanoTime();
+		for(int i = 0; i < frames; i++) drawer.draw(g);
+		g.dispose();
+		return (System.nanoTime() - start)/1e6/frames;
+	}
+
+	/**
+	 * Fraction of pixels where any colour channel differs by more than 32
+	 */
+	static double differing(BufferedImage a, BufferedImage b) {
+		int count = 0;
+		for(int y = 0; y < HEIGHT; y++)
+			for(int x = 0; x < WIDTH; x++) {
+				int p = a.getRGB(x, y), q = b.getRGB(x, y);
+				for(int shift = 0; shift < 24; shift += 8)
+					if(Math.abs(((p >> shift) & 0xff) - ((q >> shift) & 0xff)) > 32) {
+						count++;
+						break;
+					}
+			}
+		return (double)count/(WIDTH*HEIGHT);
+	}
+
+	static String format(double d) {
+		return String.format("%.2f", d);
+	}
+}
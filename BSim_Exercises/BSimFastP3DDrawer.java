@@ -0,0 +1,372 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.vecmath.Vector3d;
+
+import processing.core.PConstants;
+import processing.core.PGraphics3D;
+import processing.core.PMatrix3D;
+import bsim.BSim;
+import bsim.BSimChemicalField;
+import bsim.draw.BSimP3DDrawer;
+import bsim.particle.BSimParticle;
+import bsim.particle.BSimVesicle;
+
+/**
+ * A BSimP3DDrawer for large populations.
+ *
+ * Particles passed to draw(BSimParticle, Color) are transformed to eye space, culled if
+ * they are outside the view, and drawn at a level of detail set by their size on screen:
+ *  - below pointThreshold pixels: a single pixel, written straight into the frame
+ *  - below billboardThreshold pixels: a screen-aligned square
+ *  - otherwise: a sphere, with fewer facets below sphereThreshold pixels
+ * Squares and spheres are queued and drawn a colour at a time, with a single fill, once
+ * scene() returns. Vesicles are drawn as BSimP3DDrawer draws them, as a point inside a
+ * translucent cloud; translucent particles, points included, are queued as well and
+ * drawn after all of the opaque ones.
+ *
+ * Chemical fields are drawn averaged over blocks of boxes so that there are at most
+ * maxFieldBoxes blocks along each side, or as a single slice with drawSlice().
+ */
+public abstract class BSimFastP3DDrawer extends BSimP3DDrawer {
+
+	/** Particles smaller than this radius on screen are drawn as points */
+	protected float pointThreshold = 1.5f; // pixels
+	/** Particles smaller than this radius on screen are drawn as squares */
+	protected float billboardThreshold = 4; // pixels
+	/** Spheres smaller than this radius on screen are drawn with lowSphereDetail */
+	protected float sphereThreshold = 15; // pixels
+	protected int lowSphereDetail = 5;
+	protected int highSphereDetail = 10;
+	/** Maximum number of blocks along each side when drawing a chemical field */
+	protected int maxFieldBoxes = 10;
+
+	/** Queued particles by colour and alpha, in the order they were first seen */
+	protected LinkedHashMap<Color, ColourGroup> groups = new LinkedHashMap<Color, ColourGroup>();
+
+	/**
+	 * Eye space positions and radii of the squares and spheres of one colour, and for a
+	 * translucent colour the pixels and depths of its points
+	 */
+	protected static class ColourGroup {
+		Color c;
+		/* x,y,z,r per square or sphere */
+		float[] billboards = new float[64];
+		float[] spheres = new float[64];
+		int[] pointPixels = new int[0];
+		float[] pointDepths = new float[0];
+		int pointCount, billboardCount, sphereCount;
+
+		ColourGroup(Color c) { this.c = c; }
+
+		boolean isEmpty() { return pointCount + billboardCount + sphereCount == 0; }
+
+		void clear() { pointCount = billboardCount = sphereCount = 0; }
+
+		static float[] ensure(float[] a, int n) {
+			if(n <= a.length) return a;
+			float[] b = new float[Math.max(n, 2*a.length)];
+			System.arraycopy(a, 0, b, 0, a.length);
+			return b;
+		}
+
+		static int[] ensure(int[] a, int n) {
+			if(n <= a.length) return a;
+			int[] b = new int[Math.max(n, 2*a.length)];
+			System.arraycopy(a, 0, b, 0, a.length);
+			return b;
+		}
+	}
+
+	public BSimFastP3DDrawer(BSim sim, int width, int height) {
+		super(sim, width, height);
+	}
+
+	public void setPointThreshold(float f) { pointThreshold = f; }
+	public void setBillboardThreshold(float f) { billboardThreshold = f; }
+	public void setSphereThreshold(float f) { sphereThreshold = f; }
+	public void setSphereDetail(int low, int high) { lowSphereDetail = low; highSphereDetail = high; }
+	public void setMaxFieldBoxes(int n) { maxFieldBoxes = n; }
+
+	@Override
+	public void draw(Graphics2D g) {
+		p3d.beginDraw();
+
+		p3d.textFont(font);
+		p3d.textMode(PConstants.SCREEN);
+
+		p3d.sphereDetail(highSphereDetail);
+		p3d.noStroke();
+		p3d.background(0, 0, 0);
+
+		scene(p3d);
+		flush();
+		boundaries();
+		time();
+
+		p3d.endDraw();
+		g.drawImage(p3d.image, 0,0, null);
+	}
+
+	/**
+	 * Draws the particle at the level of detail for its size on screen
+	 */
+	@Override
+	public void draw(BSimParticle p, Color c) {
+		queue(p.getPosition().x, p.getPosition().y, p.getPosition().z, p.getRadius(), c, 255);
+	}
+
+	/**
+	 * Draws the vesicle as BSimP3DDrawer#cloud() does, as a point inside a translucent
+	 * sphere 100 times its radius, each at the level of detail for its size on screen
+	 */
+	@Override
+	public void draw(BSimVesicle v, Color c) {
+		Vector3d position = v.getPosition();
+		queue(position.x, position.y, position.z, 0, c, 255);
+		queue(position.x, position.y, position.z, 100*v.getRadius(), c, 50);
+	}
+
+	public void queue(double x, double y, double z, double radius, Color c) {
+		queue(x, y, z, radius, c, 255);
+	}
+
+	/**
+	 * Transforms the sphere at (x,y,z) to eye space with the current matrix and draws or
+	 * queues it at the level of detail for its size on screen, unless it is out of view.
+	 * alpha is the alpha of its fill, from 0 to 255.
+	 */
+	public void queue(double x, double y, double z, double radius, Color c, int alpha) {
+		PMatrix3D m = p3d.modelview;
+		float mx = (float)x, my = (float)y, mz = (float)z;
+		float ex = m.m00*mx + m.m01*my + m.m02*mz + m.m03;
+		float ey = m.m10*mx + m.m11*my + m.m12*mz + m.m13;
+		float ez = m.m20*mx + m.m21*my + m.m22*mz + m.m23;
+		/* The current matrix may include a scale() from scene() */
+		float er = (float)radius*(float)Math.sqrt(m.m00*m.m00 + m.m10*m.m10 + m.m20*m.m20);
+
+		/* Wholly behind the near plane */
+		if(-ez + er < p3d.cameraNear) return;
+
+		/* Crossing the near plane, so the projection below does not apply; leave it to the renderer */
+		if(-ez <= p3d.cameraNear) {
+			queueSphere(group(c, alpha), ex, ey, ez, -er);
+			return;
+		}
+
+		PMatrix3D pr = p3d.projection;
+		float ow = pr.m30*ex + pr.m31*ey + pr.m32*ez + pr.m33;
+		float sx = width*(1 + (pr.m00*ex + pr.m01*ey + pr.m02*ez + pr.m03)/ow)/2;
+		float sy = height*(1 + (pr.m10*ex + pr.m11*ey + pr.m12*ez + pr.m13)/ow)/2;
+		float pixels = Math.abs(er*pr.m11*height/(2*ow));
+
+		/* Outside the view */
+		if(sx + pixels < 0 || sx - pixels > width || sy + pixels < 0 || sy - pixels > height) return;
+
+		/* Points (radius 0) are always drawn as a pixel */
+		if(pixels < pointThreshold || er == 0) {
+			/*
+			 * Written into the frame as P3D draws a point, in the pixel it would use, but
+			 * depth tested so that only the nearest point in each pixel shows. P3D's own
+			 * points are not depth tested against each other, and it loses points queued
+			 * in a shape before its point array grows.
+			 */
+			int px = (int)(sx + 0.4999f), py = (int)(sy + 0.4999f);
+			if(px < 0 || px >= width || py < 0 || py >= height) return;
+			float sz = ((pr.m20*ex + pr.m21*ey + pr.m22*ez + pr.m23)/ow + 1)/2;
+			int pixel = py*width + px;
+			if(alpha < 255) {
+				/* Blended once everything opaque has been drawn */
+				ColourGroup group = group(c, alpha);
+				int n = group.pointCount;
+				group.pointPixels = ColourGroup.ensure(group.pointPixels, n + 1);
+				group.pointDepths = ColourGroup.ensure(group.pointDepths, n + 1);
+				group.pointPixels[n] = pixel;
+				group.pointDepths[n] = sz;
+				group.pointCount++;
+			}
+			else if(sz < p3d.zbuffer[pixel]) {
+				p3d.pixels[pixel] = 0xff000000 | c.getRGB();
+				p3d.zbuffer[pixel] = sz;
+			}
+		}
+		else if(pixels < billboardThreshold) {
+			ColourGroup group = group(c, alpha);
+			int n = group.billboardCount*4;
+			group.billboards = ColourGroup.ensure(group.billboards, n + 4);
+			group.billboards[n] = ex; group.billboards[n+1] = ey; group.billboards[n+2] = ez; group.billboards[n+3] = er;
+			group.billboardCount++;
+		}
+		else queueSphere(group(c, alpha), ex, ey, ez, pixels < sphereThreshold ? er : -er);
+	}
+
+	/**
+	 * The group for colour c with the given alpha
+	 */
+	protected ColourGroup group(Color c, int alpha) {
+		if(c.getAlpha() != alpha) c = new Color(c.getRed(), c.getGreen(), c.getBlue(), alpha);
+		ColourGroup group = groups.get(c);
+		if(group == null) {
+			group = new ColourGroup(c);
+			groups.put(c, group);
+		}
+		return group;
+	}
+
+	/**
+	 * Queues a sphere in eye space, with a negative radius for full detail
+	 */
+	protected void queueSphere(ColourGroup group, float ex, float ey, float ez, float r) {
+		int n = group.sphereCount*4;
+		group.spheres = ColourGroup.ensure(group.spheres, n + 4);
+		group.spheres[n] = ex; group.spheres[n+1] = ey; group.spheres[n+2] = ez; group.spheres[n+3] = r;
+		group.sphereCount++;
+	}
+
+	/**
+	 * Draws and clears the queued particles. The queue is held in eye space, so it is
+	 * drawn with the modelview matrix reset.
+	 */
+	public void flush() {
+		p3d.pushMatrix();
+		p3d.resetMatrix();
+
+		/* Opaque colours first, so that translucent ones blend over everything behind them */
+		for(Iterator<ColourGroup> it = groups.values().iterator(); it.hasNext();) {
+			ColourGroup group = it.next();
+			/* Drop colours that were not used this frame */
+			if(group.isEmpty()) {
+				it.remove();
+				continue;
+			}
+			if(group.c.getAlpha() == 255) drawGroup(group);
+		}
+		for(ColourGroup group : groups.values())
+			if(group.c.getAlpha() < 255) drawGroup(group);
+
+		p3d.popMatrix();
+	}
+
+	/**
+	 * Draws and clears the queued particles of one colour
+	 */
+	protected void drawGroup(ColourGroup group) {
+		Color c = group.c;
+		p3d.fill(c.getRed(), c.getGreen(), c.getBlue(), c.getAlpha());
+
+		if(group.billboardCount > 0) {
+			float[] b = group.billboards;
+			p3d.beginShape(PConstants.QUADS);
+			for(int i = 0; i < group.billboardCount*4; i += 4) {
+				p3d.vertex(b[i] - b[i+3], b[i+1] - b[i+3], b[i+2]);
+				p3d.vertex(b[i] + b[i+3], b[i+1] - b[i+3], b[i+2]);
+				p3d.vertex(b[i] + b[i+3], b[i+1] + b[i+3], b[i+2]);
+				p3d.vertex(b[i] - b[i+3], b[i+1] + b[i+3], b[i+2]);
+			}
+			p3d.endShape();
+		}
+
+		if(group.sphereCount > 0) {
+			float[] s = group.spheres;
+			/* Small spheres first, so that sphereDetail() changes at most twice per group */
+			p3d.sphereDetail(lowSphereDetail);
+			for(int i = 0; i < group.sphereCount*4; i += 4)
+				if(s[i+3] > 0) sphereAt(s[i], s[i+1], s[i+2], s[i+3]);
+			p3d.sphereDetail(highSphereDetail);
+			for(int i = 0; i < group.sphereCount*4; i += 4)
+				if(s[i+3] < 0) sphereAt(s[i], s[i+1], s[i+2], -s[i+3]);
+		}
+
+		/* Translucent points are blended as P3D blends a fill, and leave the depth alone */
+		int a = c.getAlpha(), rgb = c.getRGB();
+		for(int i = 0; i < group.pointCount; i++) {
+			int pixel = group.pointPixels[i];
+			if(group.pointDepths[i] < p3d.zbuffer[pixel]) p3d.pixels[pixel] = blend(p3d.pixels[pixel], rgb, a);
+		}
+
+		group.clear();
+	}
+
+	/** Blends colour over the pixel with alpha from 0 to 255 */
+	protected static int blend(int pixel, int colour, int alpha) {
+		int r = (((colour >> 16) & 0xff)*alpha + ((pixel >> 16) & 0xff)*(255 - alpha))/255;
+		int g = (((colour >> 8) & 0xff)*alpha + ((pixel >> 8) & 0xff)*(255 - alpha))/255;
+		int b = ((colour & 0xff)*alpha + (pixel & 0xff)*(255 - alpha))/255;
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+
+	protected void sphereAt(float x, float y, float z, float r) {
+		p3d.pushMatrix();
+		p3d.translate(x, y, z);
+		p3d.sphere(r);
+		p3d.popMatrix();
+	}
+
+	/**
+	 * Draws a chemical field with alpha per unit concentration alphaGrad, averaging
+	 * the concentration over blocks of boxes so that there are at most maxFieldBoxes
+	 * blocks along each side. Blocks that would be less than 1/255 opaque are skipped.
+	 */
+	@Override
+	public void draw(BSimChemicalField field, Color c, float alphaGrad) {
+		int[] boxes = field.getBoxes();
+		double[] boxSize = field.getBox();
+		int[] step = new int[3];
+		for(int d = 0; d < 3; d++) step[d] = (boxes[d] + maxFieldBoxes - 1)/maxFieldBoxes;
+
+		for(int i = 0; i < boxes[0]; i += step[0])
+			for(int j = 0; j < boxes[1]; j += step[1])
+				for(int k = 0; k < boxes[2]; k += step[2]) {
+					int ni = Math.min(step[0], boxes[0] - i);
+					int nj = Math.min(step[1], boxes[1] - j);
+					int nk = Math.min(step[2], boxes[2] - k);
+
+					double conc = 0;
+					for(int a = i; a < i + ni; a++)
+						for(int b = j; b < j + nj; b++)
+							for(int e = k; e < k + nk; e++) conc += field.getConc(a, b, e);
+					float alpha = alphaGrad*(float)(conc/(ni*nj*nk));
+					if(alpha < 1) continue;
+
+					p3d.pushMatrix();
+					p3d.translate((float)(boxSize[0]*(i + ni/2.0)), (float)(boxSize[1]*(j + nj/2.0)), (float)(boxSize[2]*(k + nk/2.0)));
+					p3d.fill(c.getRed(), c.getGreen(), c.getBlue(), alpha);
+					p3d.box((float)(boxSize[0]*ni), (float)(boxSize[1]*nj), (float)(boxSize[2]*nk));
+					p3d.popMatrix();
+				}
+	}
+
+	/**
+	 * Draws the slice k of a chemical field (boxes (i,j,k) for all i,j) as a single shape
+	 * with alpha per unit concentration alphaGrad
+	 */
+	public void drawSlice(BSimChemicalField field, Color c, float alphaGrad, int k) {
+		int[] boxes = field.getBoxes();
+		double[] boxSize = field.getBox();
+		float z = (float)(boxSize[2]*(k + 0.5));
+
+		p3d.beginShape(PConstants.QUADS);
+		for(int i = 0; i < boxes[0]; i++)
+			for(int j = 0; j < boxes[1]; j++) {
+				float alpha = alphaGrad*(float)field.getConc(i, j, k);
+				if(alpha < 1) continue;
+				float x0 = (float)(boxSize[0]*i), x1 = (float)(boxSize[0]*(i + 1));
+				float y0 = (float)(boxSize[1]*j), y1 = (float)(boxSize[1]*(j + 1));
+				p3d.fill(c.getRed(), c.getGreen(), c.getBlue(), alpha);
+				p3d.vertex(x0, y0, z);
+				p3d.vertex(x1, y0, z);
+				p3d.vertex(x1, y1, z);
+				p3d.vertex(x0, y1, z);
+			}
+		p3d.endShape();
+	}
+
+	/**
+	 * Draws remaining scene objects to the PGraphics3D object. Particles drawn with
+	 * draw(BSimParticle, Color) are queued and drawn after this returns.
+	 */
+	public abstract void scene(PGraphics3D p3d);
+
+}
@@ -0,0 +1,241 @@
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.Field;
+import java.text.DecimalFormat;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+import bsim.BSim;
+import bsim.BSimTicker;
+import bsim.draw.BSimDrawer;
+
+/**
+ * Previews a simulation with the simulation and the display on separate threads.
+ *
+ * Unlike BSim#preview(), which ticks, repaints and sleeps for dt in lockstep, the
+ * simulation thread here ticks either as fast as it can or at a fixed multiple of
+ * real time. A render thread draws the state left by the latest complete tick into
+ * an off-screen image at the display frame rate, and the window shows that image
+ * along with the measured steps/second and simulated time/wall time.
+ */
+public class BSimLivePreview {
+
+	protected BSim sim;
+	protected BSimTicker ticker;
+	protected BSimDrawer drawer;
+
+	/** Simulated seconds per wall-clock second, 0 runs the simulation as fast as possible */
+	protected volatile double speed = 0;
+	/** How far the simulation may fall behind speed before it gives up catching up */
+	protected double maxLag = 0.5; // wall-clock seconds
+	/** Frames drawn per wall-clock second */
+	protected int frameRate = 30;
+
+	/**
+	 * Held by the simulation thread for each tick and by the render thread for each frame,
+	 * so that a frame always sees the particles at the end of a tick. The drawer reads the
+	 * ticker's own particles, so there is no copy of the state that could be drawn instead.
+	 */
+	protected final ReentrantLock tickLock = new ReentrantLock();
+	/** Set by the render thread while it waits for tickLock, so the simulation lets it in */
+	protected volatile boolean frameWanted = false;
+	protected volatile int timestep;
+	/** Timestep drawn in the last frame */
+	protected int drawnTimestep = -1;
+	/** The last complete frame, swapped in by the render thread */
+	protected BufferedImage frontBuffer;
+	protected BufferedImage backBuffer;
+	/** Held while painting the front buffer and while swapping buffers */
+	protected final Object bufferLock = new Object();
+
+	protected DecimalFormat statsFormat = new DecimalFormat("0.00");
+	/** BSim#timestep, which BSim only advances inside its own preview() and export() */
+	private Field timestepField;
+
+	/**
+	 * The ticker and drawer are passed in as BSim does not expose the ones it was given
+	 */
+	public BSimLivePreview(BSim sim, BSimTicker ticker, BSimDrawer drawer) {
+		this.sim = sim;
+		this.ticker = ticker;
+		this.drawer = drawer;
+		try {
+			timestepField = BSim.class.getDeclaredField("timestep");
+			timestepField.setAccessible(true);
+		} catch (NoSuchFieldException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Runs the simulation at s simulated seconds per wall-clock second, or as fast as
+	 * possible if s <= 0. May be called from another thread while preview() runs; the
+	 * new speed applies from the next tick.
+	 */
+	public void setSpeed(double s) { speed = s; }
+	/** Sets the frame rate, before preview() is called */
+	public void setFrameRate(int f) { frameRate = f; }
+	public void setMaxLag(double seconds) { maxLag = seconds; }
+
+	public double getSpeed() { return speed; }
+	public int getFrameRate() { return frameRate; }
+	public int getTimestep() { return timestep; }
+
+	/**
+	 * Runs the simulation in a frame until the frame is closed, ignoring exporters.
+	 */
+	public void preview() {
+		frontBuffer = new BufferedImage(drawer.getWidth(), drawer.getHeight(), BufferedImage.TYPE_INT_RGB);
+		backBuffer = new BufferedImage(drawer.getWidth(), drawer.getHeight(), BufferedImage.TYPE_INT_RGB);
+
+		final JFrame frame = new JFrame("BSim Preview");
+		JPanel panel = new JPanel() {
+			@Override
+			public void paintComponent(Graphics g) {
+				synchronized(bufferLock) {
+					g.drawImage(frontBuffer, 0, 0, null);
+				}
+			}
+		};
+		panel.setPreferredSize(new Dimension(drawer.getWidth(), drawer.getHeight()));
+		frame.add(panel);
+		frame.pack();
+		frame.setResizable(false);
+		frame.setVisible(true);
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+		timestep = 0;
+		setTimestep(0);
+
+		Thread renderThread = new Thread("BSim render") {
+			@Override
+			public void run() {
+				long frameNanos = 1000000000L/frameRate;
+				long statsStart = System.nanoTime();
+				int statsTimestep = 0;
+				while(true) {
+					long frameStart = System.nanoTime();
+					/* Only draw once the simulation has moved on */
+					long drawNanos = 0;
+					if(timestep != drawnTimestep) {
+						renderFrame();
+						drawNanos = System.nanoTime() - frameStart;
+						frame.repaint();
+					}
+
+					/* Update the stats roughly once a second */
+					double wall = (frameStart - statsStart)/1e9;
+					if(wall >= 1) {
+						int t = timestep;
+						int steps = t - statsTimestep;
+						final String title = "BSim Preview - " + sim.getFormattedTime()
+								+ " - " + statsFormat.format(steps/wall) + " steps/s"
+								+ " - sim/wall " + statsFormat.format(steps*sim.getDt()/wall);
+						SwingUtilities.invokeLater(new Runnable() {
+							public void run() { frame.setTitle(title); }
+						});
+						statsStart = frameStart;
+						statsTimestep = t;
+					}
+
+					/*
+					 * Leave the simulation at least as long as the draw held it, so that a
+					 * draw slower than a frame cannot reduce it to one tick per frame
+					 */
+					long sleep = Math.max(frameNanos - (System.nanoTime() - frameStart), drawNanos);
+					if(sleep > 0) {
+						try { Thread.sleep(sleep/1000000, (int)(sleep%1000000)); } catch (InterruptedException e) { return; }
+					}
+				}
+			}
+		};
+		renderThread.setDaemon(true);
+		renderThread.start();
+
+		/*
+		 * The simulation runs on the calling thread, as BSim#preview() does. It is paced
+		 * from an origin that moves whenever the speed changes, or when a stall leaves it
+		 * more than maxLag behind, so that it then carries on at the set speed rather than
+		 * racing to catch up.
+		 */
+		double paceSpeed = 0;
+		long paceStart = 0;
+		int paceTimestep = 0;
+		while(true) {
+			/* Let a waiting frame in between ticks */
+			while(frameWanted) Thread.yield();
+			tickLock.lock();
+			try {
+				ticker.tick();
+				timestep++;
+				setTimestep(timestep);
+			} finally {
+				tickLock.unlock();
+			}
+
+			/* Wait until wall time catches up with simulated time, rechecking the speed every 100ms */
+			while(true) {
+				double s = speed;
+				long now = System.nanoTime();
+				if(s <= 0) {
+					paceSpeed = 0;
+					break;
+				}
+				if(s != paceSpeed) {
+					paceSpeed = s;
+					paceStart = now;
+					paceTimestep = timestep;
+				}
+				long ahead = (long)(1e9*(timestep - paceTimestep)*sim.getDt()/s) - (now - paceStart);
+				if(ahead < -(long)(1e9*maxLag)) {
+					paceStart = now;
+					paceTimestep = timestep;
+				}
+				if(ahead <= 0) break;
+				long sleep = Math.min(ahead, 100000000L);
+				try { Thread.sleep(sleep/1000000, (int)(sleep%1000000)); } catch (InterruptedException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Draws the state at the end of the latest tick into the back buffer, then swaps it
+	 * to the front. The simulation is only held for the draw() call itself.
+	 */
+	protected void renderFrame() {
+		Graphics2D g = backBuffer.createGraphics();
+		frameWanted = true;
+		tickLock.lock();
+		try {
+			frameWanted = false;
+			drawnTimestep = timestep;
+			drawer.draw(g);
+		} finally {
+			tickLock.unlock();
+		}
+		g.dispose();
+
+		synchronized(bufferLock) {
+			BufferedImage b = frontBuffer;
+			frontBuffer = backBuffer;
+			backBuffer = b;
+		}
+	}
+
+	/**
+	 * Keeps sim.getTime() and the drawer's clock in step with this preview
+	 */
+	protected void setTimestep(int t) {
+		try {
+			timestepField.setInt(sim, t);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
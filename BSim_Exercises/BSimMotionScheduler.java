@@ -0,0 +1,99 @@
+import java.util.PriorityQueue;
+
+import bsim.BSim;
+import bsim.particle.BSimBacterium.MotionState;
+
+/**
+ * Schedules the run/tumble transitions of a population of BSimScheduledBacterium.
+ *
+ * BSimBacterium decides whether to end a run or tumble with a random test per cell per
+ * timestep. Since run and tumble durations are exponentially distributed, each cell's
+ * next transition time can instead be sampled when its run or tumble starts. The
+ * scheduler keeps these times in a priority queue, so each tick only touches the cells
+ * whose transition falls within it. Call tick() once per timestep, before the cells'
+ * action() methods. The cells' action() methods may be run on several threads, as
+ * scheduling a transition is synchronised.
+ */
+public class BSimMotionScheduler {
+
+	protected BSim sim;
+	protected PriorityQueue<Transition> queue = new PriorityQueue<Transition>();
+	protected int timestep;
+
+	/**
+	 * A scheduled transition. Rescheduling a cell leaves its old transition in the queue,
+	 * which is ignored if it no longer matches the cell's transition time.
+	 */
+	protected static class Transition implements Comparable<Transition> {
+		double time;
+		BSimScheduledBacterium bacterium;
+
+		Transition(double time, BSimScheduledBacterium bacterium) {
+			this.time = time;
+			this.bacterium = bacterium;
+		}
+
+		public int compareTo(Transition t) { return Double.compare(time, t.time); }
+	}
+
+	public BSimMotionScheduler(BSim sim) {
+		this.sim = sim;
+	}
+
+	/** The time at the start of the next tick */
+	public double getTime() { return timestep*sim.getDt(); }
+	/** Number of transitions in the queue, including any that have been superseded */
+	public int getQueueSize() { return queue.size(); }
+
+	/**
+	 * Adds the bacterium to the schedule, sampling the end of its current run or tumble
+	 */
+	public void add(BSimScheduledBacterium b) {
+		schedule(b, getTime());
+	}
+
+	/**
+	 * Removes the bacterium from the schedule
+	 */
+	public void remove(BSimScheduledBacterium b) {
+		/* NaN never matches the time of a queued transition */
+		b.transitionTime = Double.NaN;
+	}
+
+	/**
+	 * Resamples the end of the bacterium's current run or tumble from now, for example
+	 * after its rate has changed. By memorylessness this is equivalent to having used
+	 * the new rate from the start.
+	 */
+	public void reschedule(BSimScheduledBacterium b) {
+		schedule(b, getTime());
+	}
+
+	/**
+	 * Carries out the transitions that fall within this timestep. A cell may end a run
+	 * and its following tumble within the same timestep.
+	 */
+	public void tick() {
+		double end = (timestep + 1)*sim.getDt();
+		while(!queue.isEmpty() && queue.peek().time < end) {
+			Transition t = queue.poll();
+			BSimScheduledBacterium b = t.bacterium;
+			if(t.time != b.transitionTime) continue;
+
+			if(b.getMotionState() == MotionState.RUNNING) b.endRun();
+			else b.endTumble();
+			schedule(b, t.time);
+		}
+		timestep++;
+	}
+
+	/**
+	 * Samples the end of the bacterium's current run or tumble, starting at time
+	 */
+	protected synchronized void schedule(BSimScheduledBacterium b, double time) {
+		double rate = b.getMotionState() == MotionState.RUNNING ? b.pEndRun() : b.pEndTumble();
+		b.transitionTime = time + b.sampleDuration(rate);
+		queue.add(new Transition(b.transitionTime, b));
+	}
+
+}
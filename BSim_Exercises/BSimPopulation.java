@@ -0,0 +1,212 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A population of particles (or anything else) that can grow and shrink while it is
+ * being iterated over, from any number of threads.
+ *
+ * Members are kept in an array and keep their index for as long as they are alive;
+ * the slots of dead members are reused for new ones. add() and remove() do not change
+ * the population straight away but are buffered per thread, and are applied together
+ * when commit() is called, normally at the end of each tick. Deaths are applied before
+ * births, so a member removed and a member added in the same tick may share a slot.
+ * A member that is both added and removed in the same tick is not added.
+ *
+ * BSimBacterium adds its children and vesicles to externally supplied Vectors, so
+ * getBirthList() returns a Vector that buffers anything added to it as a birth.
+ */
+public class BSimPopulation<T> {
+
+	/** Something to do to each member of the population */
+	public static interface Action<T> {
+		void apply(T t);
+	}
+
+	/** Members by index, null for free slots */
+	protected Object[] members = new Object[16];
+	/** Number of slots ever used; all slots at or beyond this are free */
+	protected int end = 0;
+	/** Free slots below end, used as a stack */
+	protected int[] free = new int[16];
+	protected int freeCount = 0;
+	/** Index of each live member */
+	protected IdentityHashMap<T, Integer> indices = new IdentityHashMap<T, Integer>();
+	/** Members removed in the current commit(), and whether died() has been called for them */
+	protected IdentityHashMap<T, Boolean> removed = new IdentityHashMap<T, Boolean>();
+
+	/** Births and deaths buffered by one thread since the last commit() */
+	protected static class Buffer<T> {
+		ArrayList<T> births = new ArrayList<T>();
+		ArrayList<T> deaths = new ArrayList<T>();
+	}
+	/** Buffers of every thread that has used this population */
+	protected Vector<Buffer<T>> buffers = new Vector<Buffer<T>>();
+	protected ThreadLocal<Buffer<T>> buffer = new ThreadLocal<Buffer<T>>() {
+		@Override
+		protected Buffer<T> initialValue() {
+			Buffer<T> b = new Buffer<T>();
+			buffers.add(b);
+			return b;
+		}
+	};
+
+	/** Threads used by parallelForEach(), created when first needed */
+	protected ExecutorService pool;
+	protected int threads = Runtime.getRuntime().availableProcessors();
+
+	/** Number of live members */
+	public int size() { return indices.size(); }
+	/** Number of slots in use or free; indices of live members are always below this */
+	public int getEnd() { return end; }
+	/** Member at index i, or null if the slot is free */
+	@SuppressWarnings("unchecked")
+	public T get(int i) { return (T)members[i]; }
+	/** Index of a live member, or -1 */
+	public int indexOf(T t) {
+		Integer i = indices.get(t);
+		return i == null ? -1 : i;
+	}
+	public boolean contains(T t) { return indices.containsKey(t); }
+
+	/** Sets the number of threads used by parallelForEach(), before it is first called */
+	public void setThreads(int n) { threads = n; }
+
+	/**
+	 * Adds t to the population at the next commit()
+	 */
+	public void add(T t) { buffer.get().births.add(t); }
+
+	/**
+	 * Removes t from the population at the next commit()
+	 */
+	public void remove(T t) { buffer.get().deaths.add(t); }
+
+	/**
+	 * A Vector that adds anything added to it to this population at the next commit().
+	 * It is always empty; pass it to BSimBacterium#setChildList() or setVesicleList().
+	 */
+	@SuppressWarnings("rawtypes")
+	public Vector getBirthList() {
+		return new Vector() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public boolean add(Object o) {
+				BSimPopulation.this.add((T)o);
+				return true;
+			}
+			@Override
+			public void addElement(Object o) { add(o); }
+		};
+	}
+
+	/**
+	 * Applies the births and deaths buffered by every thread since the last commit().
+	 * Must not be called while the population is being iterated over.
+	 */
+	public void commit() {
+		for(Buffer<T> b : buffers) {
+			for(T t : b.deaths) {
+				Integer i = indices.remove(t);
+				if(i == null) {
+					/* Not a member yet, but may be added in the same tick */
+					if(!removed.containsKey(t)) removed.put(t, false);
+					continue;
+				}
+				members[i] = null;
+				if(freeCount == free.length) free = Arrays.copyOf(free, 2*free.length);
+				free[freeCount++] = i;
+				died(t);
+				removed.put(t, true);
+			}
+			b.deaths.clear();
+		}
+		for(Buffer<T> b : buffers) {
+			for(T t : b.births) {
+				if(removed.containsKey(t)) {
+					if(!removed.put(t, true)) died(t);
+					continue;
+				}
+				if(indices.containsKey(t)) continue;
+				int i;
+				if(freeCount > 0) i = free[--freeCount];
+				else {
+					if(end == members.length) members = Arrays.copyOf(members, 2*members.length);
+					i = end++;
+				}
+				members[i] = t;
+				indices.put(t, i);
+				born(t);
+			}
+			b.births.clear();
+		}
+		removed.clear();
+	}
+
+	/** Called by commit() for each member added */
+	protected void born(T t) {}
+	/**
+	 * Called by commit() for each member removed, including members added in the same
+	 * tick, for which born() is not called
+	 */
+	protected void died(T t) {}
+
+	/**
+	 * Applies the action to each live member in index order
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(Action<T> action) {
+		for(int i = 0; i < end; i++)
+			if(members[i] != null) action.apply((T)members[i]);
+	}
+
+	/**
+	 * Applies the action to each live member, splitting the members between threads,
+	 * and returns once all are done. The action may add() and remove() members but
+	 * should not otherwise touch anything shared between members without synchronising.
+	 * If the calling thread is interrupted, the members not yet started are skipped.
+	 */
+	public void parallelForEach(final Action<T> action) throws InterruptedException {
+		if(pool == null) {
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "BSimPopulation");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		/* A few chunks per thread so that uneven chunks even out */
+		final int n = end;
+		int chunks = Math.max(1, Math.min(4*threads, n/256));
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(chunks);
+		for(int c = 0; c < chunks; c++) {
+			final int from = (int)((long)n*c/chunks);
+			final int to = (int)((long)n*(c + 1)/chunks);
+			tasks.add(new Callable<Object>() {
+				@SuppressWarnings("unchecked")
+				public Object call() {
+					for(int i = from; i < to; i++)
+						if(members[i] != null) action.apply((T)members[i]);
+					return null;
+				}
+			});
+		}
+
+		try {
+			for(Future<Object> f : pool.invokeAll(tasks)) f.get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+}
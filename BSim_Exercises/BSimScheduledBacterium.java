@@ -0,0 +1,130 @@
+import javax.vecmath.Vector3d;
+
+import bsim.BSim;
+import bsim.BSimChemicalField;
+import bsim.BSimUtils;
+import bsim.particle.BSimBacterium;
+
+/**
+ * A BSimBacterium whose run/tumble transitions are scheduled by a BSimMotionScheduler
+ * rather than tested for every timestep. Behaves as a BSimBacterium otherwise.
+ */
+public class BSimScheduledBacterium extends BSimBacterium {
+
+	protected BSimMotionScheduler scheduler;
+	/** Time at which the current run or tumble ends, set by the scheduler */
+	protected double transitionTime;
+	/** Result of movingUpGradient() for the latest timestep spent RUNNING */
+	protected boolean upGradient = false;
+
+	/**
+	 * Creates a RUNNING bacterium at the specified position, facing in a random
+	 * direction, and adds it to the scheduler. The setters below resample its
+	 * transition, so it may be configured after it is created.
+	 */
+	public BSimScheduledBacterium(BSim sim, Vector3d position, BSimMotionScheduler scheduler) {
+		super(sim, position);
+		this.scheduler = scheduler;
+		scheduler.add(this);
+	}
+
+	public BSimMotionScheduler getScheduler() { return scheduler; }
+
+	@Override
+	public void pEndRunUp(double d) {
+		super.pEndRunUp(d);
+		reschedule();
+	}
+
+	@Override
+	public void pEndRunElse(double d) {
+		super.pEndRunElse(d);
+		reschedule();
+	}
+
+	@Override
+	public void pEndTumble(double d) {
+		super.pEndTumble(d);
+		reschedule();
+	}
+
+	@Override
+	public void setMotionState(MotionState s) {
+		super.setMotionState(s);
+		reschedule();
+	}
+
+	@Override
+	public void setGoal(BSimChemicalField goal) {
+		super.setGoal(goal);
+		reschedule();
+	}
+
+	/**
+	 * Resamples the current run or tumble after a change to it. The superclass
+	 * constructor calls setMotionState() before the scheduler is set.
+	 */
+	protected void reschedule() {
+		if(scheduler != null) scheduler.reschedule(this);
+	}
+
+	/**
+	 * As BSimBacterium#pEndRun(), but using the gradient test from the latest timestep,
+	 * since movingUpGradient() updates the memory each time it is called
+	 */
+	@Override
+	public double pEndRun() {
+		if(goal != null && upGradient) return pEndRunUp;
+		else return pEndRunElse;
+	}
+
+	/** Returns an exponentially distributed duration with the given rate */
+	public double sampleDuration(double rate) {
+		return -Math.log(1 - rng.nextDouble())/rate;
+	}
+
+	/** Called by the scheduler when the current run ends */
+	protected void endRun() {
+		motionState = MotionState.TUMBLING;
+	}
+
+	/** Called by the scheduler when the current tumble ends */
+	protected void endTumble() {
+		/* Change the direction at the end of a tumble phase */
+		BSimUtils.rotatePerp(direction, tumbleAngle());
+		motionState = MotionState.RUNNING;
+	}
+
+	@Override
+	public void action() {
+		brownianForce();
+
+		if(motionState == MotionState.RUNNING) {
+			/* The run termination rate only changes when the gradient test does */
+			if(goal != null) {
+				boolean up = movingUpGradient();
+				if(up != upGradient) {
+					upGradient = up;
+					scheduler.reschedule(this);
+				}
+			}
+			rotationalDiffusion();
+			flagellarForce();
+		}
+
+		if(surfaceAreaGrowthRate > 0) grow();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void replicate() {
+		setRadiusFromSurfaceArea(surfaceArea(replicationRadius)/2);
+		BSimScheduledBacterium child = new BSimScheduledBacterium(sim, new Vector3d(position), scheduler);
+		child.setRadius(radius);
+		child.setSurfaceAreaGrowthRate(surfaceAreaGrowthRate);
+		child.setChildList(childList);
+		/* Overwrite to allow inheritance of other properties */
+		childList.add(child);
+	}
+
+}